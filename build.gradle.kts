@@ -71,6 +71,25 @@ tasks.shadowJar {
     // minimize() // 의존성 축소(주의: 과도 축소 시 NoClassDefFoundError 위험)
 }
 
+// AppCDS용 클래스 목록: Fat JAR로 KurbyPdf.warmUp()을 실행하며 로드된 클래스를 기록
+// 사용: java -Xshare:dump -XX:SharedClassListFile=build/cds/KurbyPdf.classlist \
+//           -XX:SharedArchiveFile=kurbypdf.jsa -cp KurbyPdf-1.0.0-all.jar
+//       java -XX:SharedArchiveFile=kurbypdf.jsa -cp KurbyPdf-1.0.0-all.jar:app.jar ...
+tasks.register<JavaExec>("cdsClassList") {
+    group = "distribution"
+    description = "Runs KurbyPdf.warmUp() and dumps the loaded class list for AppCDS (JDK 11+)."
+    dependsOn("shadowJar")
+
+    val classList = layout.buildDirectory.file("cds/KurbyPdf.classlist")
+    classpath = files(tasks.shadowJar.flatMap { it.archiveFile })
+    mainClass.set("io.github.juwonlee.kurbypdf.util.WarmUpMain")
+    outputs.file(classList)
+    doFirst {
+        classList.get().asFile.parentFile.mkdirs()
+        jvmArgs("-Xshare:off", "-XX:DumpLoadedClassList=${classList.get().asFile.absolutePath}")
+    }
+}
+
 tasks.register<Copy>("dist") {
     dependsOn("build", "shadowJar")
     from(layout.buildDirectory.file("libs/KurbyPdf-${project.version}.jar"))
@@ -1,19 +1,85 @@
 package io.github.juwonlee.kurbypdf;
 
+import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import io.github.juwonlee.kurbypdf.util.KeyUtil;
+import io.github.juwonlee.kurbypdf.util.PdfVerificationUtil;
 
 public class KurbyPdf {
+    /**
+     * 기본 워밍업: 3회 반복
+     */
+    public static void warmUp() throws Exception {
+        warmUp(3);
+    }
+
+    /**
+     * 메모리 내 합성 PDF로 워터마크 삽입 → 재워터마크 → 검증 왕복을 수행하여
+     * PDFBox/Jackson/JCE 클래스 로딩과 초기화를 첫 실제 요청 전에 끝내둔다.
+     *
+     * @param iterations 반복 횟수 (>=1)
+     * @throws IllegalStateException 왕복 검증 실패 시
+     */
+    public static void warmUp(int iterations) throws Exception {
+        if (iterations < 1) iterations = 1;
+
+        SecureRandom rnd = new SecureRandom();
+        byte[] hmacKey = new byte[32];
+        byte[] aesKey  = new byte[32];
+        rnd.nextBytes(hmacKey);
+        rnd.nextBytes(aesKey);
+        String hmacB64 = Base64.getEncoder().encodeToString(hmacKey);
+        String aesB64  = Base64.getEncoder().encodeToString(aesKey);
+
+        byte[] blank;
+        PDDocument doc = new PDDocument();
+        try {
+            doc.addPage(new PDPage());
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            doc.save(bout);
+            blank = bout.toByteArray();
+        } finally {
+            try { doc.close(); } catch (Exception ignore) {}
+        }
+
+        Map<String, String> claims = new HashMap<String, String>();
+        claims.put("uid", "warm-up");
+
+        for (int i = 0; i < iterations; i++) {
+            // 일반 삽입 (재워터마크 경로 포함)
+            byte[] marked = watermark(blank, new WatermarkRequest(hmacB64, aesB64, claims, null, null)).getPdfBytes();
+            WatermarkRequest re = new WatermarkRequest(hmacB64, aesB64, claims, null, null);
+            re.setReWatermark(true);
+            re.setIncrementalSave(true);
+            marked = watermark(marked, re).getPdfBytes();
+
+            // 암호화 삽입 + 검증 왕복
+            String userPwd = KeyUtil.randomOwnerPassword(16);
+            byte[] secured = watermark(marked, new WatermarkRequest(hmacB64, aesB64, claims, userPwd, null)).getPdfBytes();
+            PdfVerificationUtil.Result r = PdfVerificationUtil.verifyDetailed(secured, userPwd, hmacKey, aesKey);
+            if (!r.isValid()) throw new IllegalStateException("warm-up verification failed: " + r.getReason());
+        }
+    }
+
     public static WatermarkResult watermark(byte[] inputPdf, WatermarkRequest req) throws Exception {
         if (inputPdf == null) throw new IllegalArgumentException("inputPdf == null");
         if (req == null) throw new IllegalArgumentException("req == null");
         if (req.getClaims() == null) throw new IllegalArgumentException("claims == null");
+        boolean hasUserPassword = req.getUserPassword() != null && !req.getUserPassword().isEmpty();
+        if (req.isIncrementalSave() && !req.isReWatermark())
+            throw new IllegalArgumentException("incrementalSave requires reWatermark");
+        if (req.isIncrementalSave() && hasUserPassword)
+            throw new IllegalArgumentException("incrementalSave cannot apply userPassword");
 
         ByteArrayInputStream bin = new ByteArrayInputStream(inputPdf);
         PDDocument doc = null;
@@ -28,11 +94,17 @@ public class KurbyPdf {
             byte[] payload = WatermarkPayload.buildPayload(claims, hmacKey, aesKey);
 
             // 2) 문서 레벨 숨김 워터마크 (폼 XObject 참조, 페이지당 다중 삽입)
-            PdfForensicEmbedder.embed(doc, payload); // 기본: 페이지당 2개, 랜덤 위치
+            //    재워터마크: 기존 페이로드 스트림 제자리 교체 (없으면 새로 삽입 → changed == null)
+            Set<COSDictionary> changed = null;
+            if (req.isReWatermark()) {
+                changed = PdfForensicEmbedder.reembed(doc, payload, req.isKeepPayloadChain());
+            } else {
+                PdfForensicEmbedder.embed(doc, payload); // 기본: 페이지당 2개, 랜덤 위치
+            }
 
             // 3) 암호/권한 (옵션)
             String ownerPwd = null;
-            if (req.getUserPassword() != null && !req.getUserPassword().isEmpty()) {
+            if (hasUserPassword) {
                 ownerPwd = req.getOwnerPassword();
                 if (ownerPwd == null || ownerPwd.isEmpty()) {
                     ownerPwd = KeyUtil.randomOwnerPassword();
@@ -41,7 +113,11 @@ public class KurbyPdf {
             }
 
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            doc.save(bout);
+            if (req.isIncrementalSave() && changed != null) {
+                doc.saveIncremental(bout, changed);
+            } else {
+                doc.save(bout);
+            }
             return new WatermarkResult(bout.toByteArray(), ownerPwd);
 
         } finally {
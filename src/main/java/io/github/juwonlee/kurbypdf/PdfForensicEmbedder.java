@@ -1,20 +1,40 @@
 package io.github.juwonlee.kurbypdf;
 
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdfwriter.ContentStreamWriter;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
 import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
 import org.apache.pdfbox.util.Matrix;
 
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 public class PdfForensicEmbedder {
     private static final COSName WM_KEY = COSName.getPDFName("_k1");
     private static final COSName WM_VER = COSName.getPDFName("_k1v");
+    private static final COSName WM_PREV = COSName.getPDFName("_k1p");
 
     /**
      * 기본 embed: 페이지당 3개 삽입, 랜덤 위치
@@ -42,13 +62,7 @@ public class PdfForensicEmbedder {
         // 1) payload를 담은 COSStream을 한 번만 생성
         COSStream payloadStream = doc.getDocument().createCOSStream();
         payloadStream.setItem(WM_VER, COSName.getPDFName("1"));
-        OutputStream out = null;
-        try {
-            out = payloadStream.createOutputStream();
-            out.write(encryptedPayload);
-        } finally {
-            if (out != null) try { out.close(); } catch (Exception ignore) {}
-        }
+        writePayload(payloadStream, encryptedPayload);
 
         // 2) 각 페이지마다 FormXObject 생성 + payloadStream을 딕셔너리에 붙임
         for (PDPage page : doc.getPages()) {
@@ -88,4 +102,286 @@ public class PdfForensicEmbedder {
             }
         }
     }
+
+    /**
+     * 재워터마크: 기존 _k1 페이로드 스트림을 찾아 내용을 제자리에서 교체
+     * (페이지/폼 XObject를 새로 추가하지 않으므로 세대가 거듭되어도 파일 크기가 일정)
+     * 기존 페이로드가 없으면 기본 embed로 새로 삽입한다.
+     * <p>
+     * embed를 여러 번 거친 문서라면 가장 최근 세대(콘텐츠 스트림에서 마지막으로 그려진) 페이로드
+     * 스트림만 남기고, 이전 세대의 폼 XObject는 페이지 리소스와 콘텐츠 스트림의 그리기 블록
+     * (q ... Do ... Q)에서 제거한다. embed가 남긴 q/Q 전용 콘텐츠 스트림도 짝을 맞춰 제거하므로
+     * 전체 저장 시 한 세대 분량의 크기로 돌아온다. keepChain이면 제거된 세대의 페이로드는
+     * 최신 → 이전 순으로 _k1p 체인 뒤에 연결된다.
+     * <p>
+     * incremental 저장 시에는 이전 리비전이 파일에 그대로 남으므로 세대마다 페이로드 크기만큼
+     * 파일이 커지고, keepChain=false여도 이전 페이로드(및 제거된 폼)는 이전 리비전에서 복구 가능하다.
+     *
+     * @param doc                PDDocument (열려있는 상태)
+     * @param encryptedPayload   새 암호화 페이로드 바이트
+     * @param keepChain          true이면 이전 페이로드를 _k1p 체인으로 보존
+     * @return 변경된 객체 집합 (incremental 저장용), 새로 삽입한 경우 null
+     */
+    public static Set<COSDictionary> reembed(PDDocument doc, byte[] encryptedPayload, boolean keepChain) throws Exception {
+        if (doc == null) throw new IllegalArgumentException("doc == null");
+        if (encryptedPayload == null || encryptedPayload.length == 0) throw new IllegalArgumentException("payload empty");
+
+        // 1) 페이로드 스트림을 세대순(그려진 순서)으로 수집, 가장 최근 세대를 기준으로 사용
+        List<COSStream> generations = payloadGenerations(doc);
+        if (generations.isEmpty()) {
+            embed(doc, encryptedPayload);
+            return null;
+        }
+        COSStream payloadStream = generations.get(generations.size() - 1);
+
+        Set<COSDictionary> changed = new HashSet<COSDictionary>();
+
+        // 2) 이전 세대의 다른 스트림을 참조하는 폼 제거 (그리기 블록 → 리소스 순)
+        List<COSName> staleNames = new ArrayList<COSName>();
+        List<COSDictionary> staleXObjects = new ArrayList<COSDictionary>();
+        for (PDPage page : doc.getPages()) {
+            PDResources res = page.getResources();
+            if (res == null) continue;
+
+            Set<COSName> stale = new HashSet<COSName>();
+            for (COSName name : res.getXObjectNames()) {
+                COSBase wm = payloadOf(res, name);
+                if (wm instanceof COSStream && wm != payloadStream) stale.add(name);
+            }
+            if (stale.isEmpty()) continue;
+
+            Iterator<PDStream> contents = page.getContentStreams();
+            while (contents.hasNext()) {
+                COSStream content = contents.next().getCOSObject();
+                if (removeDrawBlocks(content, stale)) changed.add(content);
+            }
+            if (removeEmptyContextStreams(page)) changed.add(page.getCOSObject());
+
+            // 리소스는 여러 페이지가 공유(상속)할 수 있으므로 모든 페이지 처리 후 제거
+            COSDictionary xobjects = (COSDictionary) res.getCOSObject().getDictionaryObject(COSName.XOBJECT);
+            for (COSName name : stale) {
+                staleNames.add(name);
+                staleXObjects.add(xobjects);
+            }
+
+            COSDictionary owner = resourcesOwner(page);
+            changed.add(owner);
+            if (!res.getCOSObject().isDirect()) changed.add(res.getCOSObject());
+            if (!xobjects.isDirect()) changed.add(xobjects);
+        }
+        for (int i = 0; i < staleNames.size(); i++) {
+            staleXObjects.get(i).removeItem(staleNames.get(i));
+        }
+
+        // 3) 이전 페이로드를 체인으로 보존 (옵션)
+        if (keepChain) {
+            COSStream prev = doc.getDocument().createCOSStream();
+            COSBase ver = payloadStream.getDictionaryObject(WM_VER);
+            prev.setItem(WM_VER, ver != null ? ver : COSName.getPDFName("1"));
+            prev.setItem(WM_PREV, payloadStream.getItem(WM_PREV));
+            writePayload(prev, readPayload(payloadStream));
+            payloadStream.setItem(WM_PREV, prev);
+
+            // 제거된 세대의 페이로드를 최신 → 이전 순으로 체인 끝에 연결
+            Set<COSStream> linked = new HashSet<COSStream>();
+            COSStream tail = chainTail(prev, linked);
+            for (int i = generations.size() - 2; i >= 0; i--) {
+                COSStream older = generations.get(i);
+                if (linked.contains(older)) continue;
+                tail.setItem(WM_PREV, older);
+                changed.add(tail);
+                tail = chainTail(older, linked);
+            }
+        } else {
+            payloadStream.removeItem(WM_PREV);
+        }
+
+        // 4) 기준 스트림 내용 교체
+        writePayload(payloadStream, encryptedPayload);
+        payloadStream.setNeedToBeUpdated(true);
+        changed.add(payloadStream);
+        return changed;
+    }
+
+    /**
+     * 페이로드 스트림을 오래된 세대 → 최근 세대 순으로 반환
+     * (콘텐츠 스트림의 Do 순서 기준, 그려지지 않은 스트림은 가장 오래된 것으로 간주)
+     */
+    private static List<COSStream> payloadGenerations(PDDocument doc) throws Exception {
+        List<COSStream> drawn = new ArrayList<COSStream>();
+        List<COSStream> undrawn = new ArrayList<COSStream>();
+        for (PDPage page : doc.getPages()) {
+            PDResources res = page.getResources();
+            if (res == null) continue;
+
+            Iterator<PDStream> contents = page.getContentStreams();
+            while (contents.hasNext()) {
+                List<Object> tokens = parseTokens(contents.next().getCOSObject());
+                for (int i = 1; i < tokens.size(); i++) {
+                    Object t = tokens.get(i);
+                    Object name = tokens.get(i - 1);
+                    if (t instanceof Operator && "Do".equals(((Operator) t).getName()) && name instanceof COSName) {
+                        COSBase wm = payloadOf(res, (COSName) name);
+                        if (wm instanceof COSStream && !drawn.contains(wm)) drawn.add((COSStream) wm);
+                    }
+                }
+            }
+            for (COSName name : res.getXObjectNames()) {
+                COSBase wm = payloadOf(res, name);
+                if (wm instanceof COSStream && !undrawn.contains(wm)) undrawn.add((COSStream) wm);
+            }
+        }
+        undrawn.removeAll(drawn);
+        List<COSStream> out = new ArrayList<COSStream>(undrawn);
+        out.addAll(drawn);
+        return out;
+    }
+
+    /** _k1p 체인의 마지막 스트림 (방문한 스트림은 seen에 기록, 순환 참조 방지) */
+    private static COSStream chainTail(COSStream head, Set<COSStream> seen) {
+        COSStream tail = head;
+        seen.add(tail);
+        COSBase next = tail.getDictionaryObject(WM_PREV);
+        while (next instanceof COSStream && !seen.contains(next)) {
+            tail = (COSStream) next;
+            seen.add(tail);
+            next = tail.getDictionaryObject(WM_PREV);
+        }
+        return tail;
+    }
+
+    private static List<Object> parseTokens(COSStream content) throws Exception {
+        PDFStreamParser parser = new PDFStreamParser(new PDStream(content).toByteArray());
+        parser.parse();
+        return parser.getTokens();
+    }
+
+    private static COSBase payloadOf(PDResources res, COSName name) throws Exception {
+        PDXObject xo = res.getXObject(name);
+        if (!(xo instanceof PDFormXObject)) return null;
+        return ((PDFormXObject) xo).getCOSObject().getDictionaryObject(WM_KEY);
+    }
+
+    /**
+     * 콘텐츠 스트림에서 지정한 폼을 그리는 q ... Q 블록을 제거
+     *
+     * @return 변경 여부
+     */
+    private static boolean removeDrawBlocks(COSStream content, Set<COSName> names) throws Exception {
+        List<Object> tokens = parseTokens(content);
+
+        boolean[] drop = new boolean[tokens.size()];
+        boolean dropped = false;
+        Deque<int[]> blocks = new ArrayDeque<int[]>(); // {q 위치, 제거 여부}
+        for (int i = 0; i < tokens.size(); i++) {
+            Object t = tokens.get(i);
+            if (!(t instanceof Operator)) continue;
+
+            String op = ((Operator) t).getName();
+            if ("q".equals(op)) {
+                blocks.push(new int[] {i, 0});
+            } else if ("Q".equals(op)) {
+                // 이전 스트림에서 열린 q를 닫는 Q는 스택이 비어 있으므로 무시
+                if (blocks.isEmpty()) continue;
+                int[] block = blocks.pop();
+                if (block[1] == 1) {
+                    for (int j = block[0]; j <= i; j++) drop[j] = true;
+                    dropped = true;
+                }
+            } else if ("Do".equals(op) && i > 0 && names.contains(tokens.get(i - 1))) {
+                if (!blocks.isEmpty()) {
+                    blocks.peek()[1] = 1;
+                } else {
+                    drop[i - 1] = drop[i] = true;
+                    dropped = true;
+                }
+            }
+        }
+        if (!dropped) return false;
+
+        List<Object> kept = new ArrayList<Object>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (!drop[i]) kept.add(tokens.get(i));
+        }
+        OutputStream out = null;
+        try {
+            out = content.createOutputStream(COSName.FLATE_DECODE);
+            new ContentStreamWriter(out).writeTokens(kept);
+        } finally {
+            if (out != null) try { out.close(); } catch (Exception ignore) {}
+        }
+        return true;
+    }
+
+    /**
+     * embed(resetContext)가 남긴 q 전용 앞 스트림과, 그리기 블록 제거 후 Q만 남은 뒤 스트림을 짝지어 제거
+     *
+     * @return 변경 여부
+     */
+    private static boolean removeEmptyContextStreams(PDPage page) throws Exception {
+        COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+        if (!(contents instanceof COSArray)) return false;
+        COSArray array = (COSArray) contents;
+
+        List<Integer> saves = new ArrayList<Integer>();
+        List<Integer> restores = new ArrayList<Integer>();
+        for (int i = 0; i < array.size(); i++) {
+            COSBase item = array.getObject(i);
+            if (!(item instanceof COSStream)) continue;
+            List<Object> tokens = parseTokens((COSStream) item);
+            if (tokens.size() != 1 || !(tokens.get(0) instanceof Operator)) continue;
+
+            String op = ((Operator) tokens.get(0)).getName();
+            if ("q".equals(op)) saves.add(i);
+            else if ("Q".equals(op)) restores.add(i);
+        }
+
+        // q 스트림이 짝이 되는 Q 스트림보다 앞에 있을 때만 제거 (중첩 균형 유지)
+        List<Integer> remove = new ArrayList<Integer>();
+        for (int k = 0; k < Math.min(saves.size(), restores.size()); k++) {
+            if (saves.get(k) > restores.get(k)) break;
+            remove.add(saves.get(k));
+            remove.add(restores.get(k));
+        }
+        if (remove.isEmpty()) return false;
+
+        Collections.sort(remove, Collections.<Integer>reverseOrder());
+        for (int i : remove) array.remove(i);
+        // 간접 참조 배열이어도 페이지에 직접 배열로 기록되도록 다시 설정
+        page.getCOSObject().setItem(COSName.CONTENTS, array);
+        return true;
+    }
+
+    /** Resources를 실제로 가진 페이지 트리 노드 (상속된 경우 부모 노드) */
+    private static COSDictionary resourcesOwner(PDPage page) {
+        COSDictionary node = page.getCOSObject();
+        while (node != null && !node.containsKey(COSName.RESOURCES)) {
+            COSBase parent = node.getDictionaryObject(COSName.PARENT);
+            node = parent instanceof COSDictionary ? (COSDictionary) parent : null;
+        }
+        return node != null ? node : page.getCOSObject();
+    }
+
+    private static void writePayload(COSStream stream, byte[] payload) throws Exception {
+        // 기존 스트림에 필터가 남아 있으면 원시 바이트와 어긋나므로 제거
+        stream.removeItem(COSName.FILTER);
+        stream.removeItem(COSName.DECODE_PARMS);
+        OutputStream out = null;
+        try {
+            out = stream.createOutputStream();
+            out.write(payload);
+        } finally {
+            if (out != null) try { out.close(); } catch (Exception ignore) {}
+        }
+    }
+
+    private static byte[] readPayload(COSStream stream) throws Exception {
+        InputStream in = null;
+        try {
+            in = stream.createInputStream();
+            return IOUtils.toByteArray(in);
+        } finally {
+            if (in != null) try { in.close(); } catch (Exception ignore) {}
+        }
+    }
 }
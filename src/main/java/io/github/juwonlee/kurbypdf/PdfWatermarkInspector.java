@@ -22,6 +22,7 @@ import java.util.*;
 public class PdfWatermarkInspector {
     private static final ObjectMapper OM = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
     private static final COSName WM_KEY = COSName.getPDFName("_k1");
+    private static final COSName WM_PREV = COSName.getPDFName("_k1p");
     private static final int IV_LEN = 12;
 
     public static DecodedWatermark extractFirst(byte[] pdf, byte[] hmacKey, byte[] aesKey) throws Exception {
@@ -77,6 +78,51 @@ public class PdfWatermarkInspector {
         }
     }
 
+    public static List<DecodedWatermark> extractChain(byte[] pdf, byte[] hmacKey, byte[] aesKey) throws Exception {
+        return extractChain(pdf, hmacKey, aesKey, null);
+    }
+
+    /**
+     * 재워터마크 체인 추출: 현재 페이로드부터 _k1p로 연결된 이전 페이로드까지 순서대로 반환
+     */
+    public static List<DecodedWatermark> extractChain(byte[] pdf, byte[] hmacKey, byte[] aesKey, String password) throws Exception {
+        if (pdf == null) throw new IllegalArgumentException("pdf == null");
+
+        ByteArrayInputStream bin = new ByteArrayInputStream(pdf);
+        PDDocument doc = null;
+        try {
+            doc = (password != null && !password.isEmpty()) ? PDDocument.load(bin, password) : PDDocument.load(bin);
+
+            Set<COSStream> seen = new HashSet<COSStream>();
+            List<DecodedWatermark> out = new ArrayList<DecodedWatermark>();
+
+            for (PDPage page : doc.getPages()) {
+                PDResources res = page.getResources();
+                if (res == null) continue;
+
+                for (COSName name : res.getXObjectNames()) {
+                    PDXObject xo = res.getXObject(name);
+                    if (xo instanceof PDFormXObject) {
+                        Object wm = ((PDFormXObject) xo).getCOSObject().getDictionaryObject(WM_KEY);
+                        // 첫 페이로드 스트림에서 체인을 따라감 (순환 참조 방지)
+                        while (wm instanceof COSStream && !seen.contains(wm)) {
+                            COSStream stream = (COSStream) wm;
+                            seen.add(stream);
+                            out.add(decryptAndVerify(streamToBytes(stream), hmacKey, aesKey));
+                            wm = stream.getDictionaryObject(WM_PREV);
+                        }
+                        if (!out.isEmpty()) return out;
+                    }
+                }
+            }
+            return out;
+
+        } finally {
+            if (doc != null) try { doc.close(); } catch (Exception ignore) {}
+            try { bin.close(); } catch (Exception ignore) {}
+        }
+    }
+
     private static byte[] streamToBytes(COSStream s) throws Exception {
         InputStream in = null;
         try {
@@ -10,6 +10,10 @@ public class WatermarkRequest {
     private String userPassword;   // optional
     private String ownerPassword;  // optional (null/"" -> 랜덤)
 
+    private boolean reWatermark;      // 기존 페이로드 스트림을 제자리 교체
+    private boolean keepPayloadChain; // 재워터마크 시 이전 페이로드 보존
+    private boolean incrementalSave;  // 재워터마크 시 incremental update로 저장
+
     public WatermarkRequest() {
     }
 
@@ -30,4 +34,16 @@ public class WatermarkRequest {
     public Map<String, String> getClaims() { return claims; }
     public String getUserPassword() { return userPassword; }
     public String getOwnerPassword() { return ownerPassword; }
+    public boolean isReWatermark() { return reWatermark; }
+    public boolean isKeepPayloadChain() { return keepPayloadChain; }
+    public boolean isIncrementalSave() { return incrementalSave; }
+
+    public void setReWatermark(boolean reWatermark) { this.reWatermark = reWatermark; }
+    public void setKeepPayloadChain(boolean keepPayloadChain) { this.keepPayloadChain = keepPayloadChain; }
+    /**
+     * 재워터마크 결과를 incremental update로 저장 (reWatermark 필수, userPassword와 함께 사용 불가)
+     * - 기존 페이로드가 없어 새로 삽입한 경우에는 전체 저장으로 대체됨
+     * - 이전 리비전이 남으므로 세대마다 파일이 커지고, keepPayloadChain=false여도 이전 페이로드는 복구 가능
+     */
+    public void setIncrementalSave(boolean incrementalSave) { this.incrementalSave = incrementalSave; }
 }
@@ -0,0 +1,25 @@
+package io.github.juwonlee.kurbypdf.util;
+
+import io.github.juwonlee.kurbypdf.KurbyPdf;
+
+/**
+ * CDS 클래스 목록 생성용 진입점: KurbyPdf.warmUp()만 수행하고 종료
+ * (예: java -XX:DumpLoadedClassList=kurbypdf.classlist -cp KurbyPdf-all.jar io.github.juwonlee.kurbypdf.util.WarmUpMain)
+ */
+public class WarmUpMain {
+    private WarmUpMain() {}
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 3;
+        if (args.length > 0) {
+            try {
+                iterations = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                System.err.println("usage: WarmUpMain [iterations]");
+                System.exit(2);
+                return;
+            }
+        }
+        KurbyPdf.warmUp(iterations);
+    }
+}
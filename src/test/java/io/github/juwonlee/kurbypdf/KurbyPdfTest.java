@@ -1,10 +1,14 @@
 package io.github.juwonlee.kurbypdf;
 
 import io.github.juwonlee.kurbypdf.util.PdfVerificationUtil;
+import io.github.juwonlee.kurbypdf.util.WarmUpMain;
+import org.apache.pdfbox.contentstream.operator.Operator;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.graphics.PDXObject;
 import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
@@ -16,8 +20,14 @@ import java.io.FileOutputStream;
 import java.nio.file.Files;
 import java.util.*;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
 
 public class KurbyPdfTest {
     // 테스트용 키 (운영에서는 안전한 키 관리 필요)
@@ -98,6 +108,236 @@ public class KurbyPdfTest {
         System.out.println("nonce=" + vr.getNonce());
     }
 
+    @Test
+    public void testReWatermarkInPlace() throws Exception {
+        File inFile = new File(getClass().getClassLoader().getResource("input/sample.pdf").toURI());
+        byte[] pdf = Files.readAllBytes(inFile.toPath());
+
+        // 1세대: 일반 삽입, 이후 세대: 제자리 교체 → 크기/워터마크 개수 일정
+        pdf = KurbyPdf.watermark(pdf, watermarkRequest("gen-0", false, false, false)).getPdfBytes();
+        int firstSize = -1;
+        for (int gen = 1; gen <= 3; gen++) {
+            pdf = KurbyPdf.watermark(pdf, watermarkRequest("gen-" + gen, true, false, false)).getPdfBytes();
+            if (firstSize < 0) firstSize = pdf.length;
+            assertTrue(Math.abs(pdf.length - firstSize) < 64, "size grew: " + firstSize + " -> " + pdf.length);
+        }
+
+        List<PdfWatermarkInspector.DecodedWatermark> all = PdfWatermarkInspector.extractAll(pdf, HMAC_KEY, AES_KEY);
+        assertEquals(1, all.size());
+        assertTrue(all.get(0).isSignatureValid());
+        assertEquals("gen-3", all.get(0).getClaims().get("uid"));
+    }
+
+    @Test
+    public void testReWatermarkChainAndIncremental() throws Exception {
+        File inFile = new File(getClass().getClassLoader().getResource("input/sample.pdf").toURI());
+        byte[] pdf = Files.readAllBytes(inFile.toPath());
+
+        pdf = KurbyPdf.watermark(pdf, watermarkRequest("gen-0", true, true, true)).getPdfBytes();
+        for (int gen = 1; gen <= 2; gen++) {
+            byte[] before = pdf;
+            pdf = KurbyPdf.watermark(pdf, watermarkRequest("gen-" + gen, true, true, true)).getPdfBytes();
+            // incremental update: 이전 리비전이 그대로 앞부분에 남아야 함
+            assertArrayEquals(before, Arrays.copyOf(pdf, before.length));
+        }
+
+        assertEquals(1, PdfWatermarkInspector.extractAll(pdf, HMAC_KEY, AES_KEY).size());
+
+        List<PdfWatermarkInspector.DecodedWatermark> chain = PdfWatermarkInspector.extractChain(pdf, HMAC_KEY, AES_KEY);
+        assertEquals(3, chain.size());
+        for (int i = 0; i < chain.size(); i++) {
+            assertTrue(chain.get(i).isSignatureValid());
+            assertEquals("gen-" + (2 - i), chain.get(i).getClaims().get("uid"));
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        // 합성 PDF 왕복 검증 실패 시 IllegalStateException
+        assertDoesNotThrow(() -> KurbyPdf.warmUp(1));
+
+        // 워밍업 이후 실제 삽입/검증이 정상 동작해야 함
+        File inFile = new File(getClass().getClassLoader().getResource("input/sample.pdf").toURI());
+        byte[] pdf = KurbyPdf.watermark(Files.readAllBytes(inFile.toPath()),
+                watermarkRequest("after-warm-up", false, false, false)).getPdfBytes();
+        PdfVerificationUtil.Result vr = PdfVerificationUtil.verifyDetailed(pdf, null, HMAC_KEY, AES_KEY);
+        assertTrue(vr.isValid(), "Verification invalid: " + vr.getReason());
+        assertEquals("after-warm-up", vr.getClaims().get("uid"));
+    }
+
+    @Test
+    public void testWarmUpMainDumpsClassList() throws Exception {
+        // -XX:DumpLoadedClassList는 JDK 11+ (cdsClassList 태스크와 동일한 방식)
+        assumeFalse(System.getProperty("java.specification.version").startsWith("1."));
+
+        File outDir = new File("build/test-out");
+        if (!outDir.exists()) outDir.mkdirs();
+        File classList = new File(outDir, "KurbyPdf.classlist");
+        if (classList.exists()) classList.delete();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java,
+                "-Xshare:off",
+                "-XX:DumpLoadedClassList=" + classList.getAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                WarmUpMain.class.getName(), "1")
+                .redirectErrorStream(true)
+                .redirectOutput(new File(outDir, "KurbyPdf.classlist.log"))
+                .start();
+        assertEquals(0, p.waitFor(), "warm-up main failed");
+
+        List<String> classes = Files.readAllLines(classList.toPath());
+        assertTrue(classes.contains("io/github/juwonlee/kurbypdf/PdfForensicEmbedder"));
+        assertTrue(classes.contains("org/apache/pdfbox/pdmodel/PDDocument"));
+        assertTrue(classes.contains("com/fasterxml/jackson/databind/ObjectMapper"));
+    }
+
+    @Test
+    public void testReWatermarkRemovesStaleForms() throws Exception {
+        File inFile = new File(getClass().getClassLoader().getResource("input/sample.pdf").toURI());
+        byte[] legacy = Files.readAllBytes(inFile.toPath());
+
+        // 일반 삽입 3세대 → 페이지당 폼 9개
+        for (int gen = 0; gen < 3; gen++) {
+            legacy = KurbyPdf.watermark(legacy, watermarkRequest("gen-" + gen, false, false, false)).getPdfBytes();
+        }
+        int pages;
+        try (PDDocument doc = PDDocument.load(legacy)) {
+            pages = doc.getNumberOfPages();
+            assertEquals(pages * 9, countWatermarkForms(doc));
+        }
+
+        // 한 세대만 삽입한 문서 크기 (전체 저장 시 이 크기로 돌아와야 함)
+        byte[] single = KurbyPdf.watermark(Files.readAllBytes(inFile.toPath()),
+                watermarkRequest("gen-0", false, false, false)).getPdfBytes();
+
+        // 전체 저장 / incremental 저장 모두 한 세대 분량(페이지당 3개)만 남아야 함
+        for (boolean incremental : new boolean[] {false, true}) {
+            byte[] pdf = KurbyPdf.watermark(legacy, watermarkRequest("gen-3", true, false, incremental)).getPdfBytes();
+            if (incremental) {
+                assertArrayEquals(legacy, Arrays.copyOf(pdf, legacy.length));
+            } else {
+                assertTrue(Math.abs(pdf.length - single.length) < 64, "size " + pdf.length + " vs single " + single.length);
+            }
+
+            try (PDDocument doc = PDDocument.load(pdf)) {
+                assertEquals(pages * 3, countWatermarkForms(doc));
+                assertDrawnFormsExist(doc);
+                assertNoEmptyContextStreams(doc);
+            }
+            List<PdfWatermarkInspector.DecodedWatermark> all = PdfWatermarkInspector.extractAll(pdf, HMAC_KEY, AES_KEY);
+            assertEquals(1, all.size());
+            assertEquals("gen-3", all.get(0).getClaims().get("uid"));
+        }
+
+        // keepChain: 제거된 세대도 최신 → 이전 순으로 체인에 남아야 함
+        for (boolean incremental : new boolean[] {false, true}) {
+            byte[] pdf = KurbyPdf.watermark(legacy, watermarkRequest("gen-3", true, true, incremental)).getPdfBytes();
+            try (PDDocument doc = PDDocument.load(pdf)) {
+                assertEquals(pages * 3, countWatermarkForms(doc));
+            }
+            List<PdfWatermarkInspector.DecodedWatermark> chain = PdfWatermarkInspector.extractChain(pdf, HMAC_KEY, AES_KEY);
+            assertEquals(4, chain.size());
+            for (int i = 0; i < chain.size(); i++) {
+                assertTrue(chain.get(i).isSignatureValid());
+                assertEquals("gen-" + (3 - i), chain.get(i).getClaims().get("uid"));
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalSaveRequiresReWatermark() throws Exception {
+        File inFile = new File(getClass().getClassLoader().getResource("input/sample.pdf").toURI());
+        byte[] pdf = Files.readAllBytes(inFile.toPath());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> KurbyPdf.watermark(pdf, watermarkRequest("uid", false, false, true)));
+    }
+
+    @Test
+    public void testIncrementalSaveRejectsUserPassword() throws Exception {
+        File inFile = new File(getClass().getClassLoader().getResource("input/sample.pdf").toURI());
+        byte[] pdf = Files.readAllBytes(inFile.toPath());
+
+        WatermarkRequest req = new WatermarkRequest(
+                Base64.getEncoder().encodeToString(HMAC_KEY),
+                Base64.getEncoder().encodeToString(AES_KEY),
+                Collections.singletonMap("uid", "uid"),
+                "testpw123!",
+                null
+        );
+        req.setReWatermark(true);
+        req.setIncrementalSave(true);
+        assertThrows(IllegalArgumentException.class, () -> KurbyPdf.watermark(pdf, req));
+    }
+
+    private int countWatermarkForms(PDDocument doc) throws Exception {
+        int count = 0;
+        for (PDPage page : doc.getPages()) {
+            PDResources res = page.getResources();
+            if (res == null) continue;
+            for (COSName name : res.getXObjectNames()) {
+                PDXObject xo = res.getXObject(name);
+                if (xo instanceof PDFormXObject
+                        && ((PDFormXObject) xo).getCOSObject().getDictionaryObject(COSName.getPDFName("_k1")) != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // 콘텐츠 스트림의 모든 Do 대상이 리소스에 존재하는지 확인 (제거된 폼의 그리기 블록이 남지 않았는지)
+    private void assertDrawnFormsExist(PDDocument doc) throws Exception {
+        for (PDPage page : doc.getPages()) {
+            PDFStreamParser parser = new PDFStreamParser(page);
+            parser.parse();
+            List<Object> tokens = parser.getTokens();
+            for (int i = 1; i < tokens.size(); i++) {
+                Object t = tokens.get(i);
+                if (t instanceof Operator && "Do".equals(((Operator) t).getName())) {
+                    COSName name = (COSName) tokens.get(i - 1);
+                    assertNotNull(page.getResources().getXObject(name), "dangling Do " + name.getName());
+                }
+            }
+        }
+    }
+
+    // 제거된 세대의 q/Q 전용 콘텐츠 스트림이 남지 않았는지 확인 (남은 세대의 q 앞 스트림 1개만 허용)
+    private void assertNoEmptyContextStreams(PDDocument doc) throws Exception {
+        for (PDPage page : doc.getPages()) {
+            int saves = 0;
+            Iterator<PDStream> contents = page.getContentStreams();
+            while (contents.hasNext()) {
+                PDFStreamParser parser = new PDFStreamParser(contents.next().toByteArray());
+                parser.parse();
+                List<Object> tokens = parser.getTokens();
+                if (tokens.size() != 1 || !(tokens.get(0) instanceof Operator)) continue;
+
+                String op = ((Operator) tokens.get(0)).getName();
+                assertFalse("Q".equals(op), "leftover Q-only content stream");
+                if ("q".equals(op)) saves++;
+            }
+            assertTrue(saves <= 1, "leftover q-only content streams: " + saves);
+        }
+    }
+
+    private WatermarkRequest watermarkRequest(String uid, boolean reWatermark, boolean keepChain, boolean incremental) {
+        Map<String,String> claims = new LinkedHashMap<String, String>();
+        claims.put("uid", uid);
+        WatermarkRequest req = new WatermarkRequest(
+                Base64.getEncoder().encodeToString(HMAC_KEY),
+                Base64.getEncoder().encodeToString(AES_KEY),
+                claims,
+                null,
+                null
+        );
+        req.setReWatermark(reWatermark);
+        req.setKeepPayloadChain(keepChain);
+        req.setIncrementalSave(incremental);
+        return req;
+    }
+
     // === PDF 내 래스터 이미지 개수 세기 (Form XObject 재귀 포함) ===
     private int countImages(PDDocument doc) throws Exception {
         int[] count = new int[] {0};